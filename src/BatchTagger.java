@@ -0,0 +1,313 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Checkpointed batch tagging
+ *
+ * Splits the input at review boundaries into shards, tags the shards with a pool of workers and
+ * writes one output file per shard, numbered with the global sentence offsets so the concatenated
+ * shards are the same as the output of tag().
+ * The shard plan is stored in manifest.txt and every finished shard is appended to completed.txt,
+ * so a restarted job on the same input and model only tags the shards that had not finished.
+ *
+ * Usage: java BatchTagger <input> <output directory> [threads] [shard size eg 64MB]
+ */
+public class BatchTagger {
+	private SequenceTagger tagger;
+	private File input;
+	private File outputDirectory;
+	private int numThreads;
+	private long shardBytes;
+
+	private ArrayList<long[]> shards = new ArrayList<long[]>();	//{start byte, end byte, global sentence offset}
+
+	public BatchTagger(SequenceTagger tagger, String input, String outputDirectory, int threads, long shardBytes) {
+		this.tagger = tagger;
+		this.input = new File(input);
+		this.outputDirectory = new File(outputDirectory);
+		this.numThreads = threads;
+		this.shardBytes = shardBytes;
+	}
+
+	/*
+	 * Tags every shard that is not completed yet
+	 * Throws if any shard failed, the completed ones are kept for the next run
+	 */
+	public void run() throws IOException {
+		outputDirectory.mkdirs();
+		File manifest = new File(outputDirectory, "manifest.txt");
+		File completedLog = new File(outputDirectory, "completed.txt");
+
+		HashSet<Integer> completed = new HashSet<Integer>();
+		if(readManifest(manifest)) {
+			completed = readCompleted(completedLog);
+		} else {
+			completedLog.delete();
+			deleteShardFiles();
+			planShards();
+			writeManifest(manifest);
+		}
+
+		final PrintStream completedOut = new PrintStream(new FileOutputStream(completedLog, true));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		int skipped = 0;
+
+		for(int i = 0; i < shards.size(); i++) {
+			if(completed.contains(i) && shardFile(i).exists()) {
+				skipped++;
+				continue;
+			}
+			final int shard = i;
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					tagShard(shard);
+					synchronized(completedOut) {
+						completedOut.println(shard);
+						completedOut.flush();
+						if(completedOut.checkError()) throw new IOException("Could not record shard " + shard + " as completed");
+					}
+					return shard;
+				}
+			}));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		for(Future<Integer> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failed++;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				failed++;
+			}
+		}
+		completedOut.close();
+
+		System.err.println(shards.size() + " shards: " + skipped + " already completed, " + (results.size() - failed) + " tagged, " + failed + " failed");
+		if(failed > 0) {
+			throw new IOException(failed + " shards failed, run again to resume");
+		}
+	}
+
+	/*
+	 * Tags one shard into its own file, the file only appears once the shard is complete
+	 */
+	private void tagShard(int shard) throws IOException {
+		long[] bounds = shards.get(shard);
+		if(bounds[1] - bounds[0] >= Integer.MAX_VALUE) {		//Shards end at a review, so one can outgrow shardBytes
+			throw new IOException("Shard " + shard + " is " + (bounds[1] - bounds[0]) + " bytes, too large to tag in memory");
+		}
+		byte[] bytes = new byte[(int) (bounds[1] - bounds[0])];
+		RandomAccessFile in = new RandomAccessFile(input, "r");
+		try {
+			in.seek(bounds[0]);
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+
+		File target = shardFile(shard);
+		File temp = new File(target.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		PrintStream out = new PrintStream(new BufferedOutputStream(file, 1 << 16));
+		boolean written = false;
+		try {
+			HMM hmm = tagger.getHMM().copy();
+			hmm.setOutput(out);
+			hmm.setNumSentences(bounds[2]);
+			hmm.runHMM(new String(bytes));
+			out.flush();
+			if(out.checkError()) throw new IOException("Could not write " + temp);
+			file.getFD().sync();
+			written = true;
+		} finally {
+			out.close();
+			if(!written) temp.delete();
+		}
+		if(!temp.renameTo(target)) {
+			throw new IOException("Could not move " + temp + " to " + target);
+		}
+	}
+
+	/*
+	 * Splits the input after the empty line ending a review, once a shard holds at least shardBytes
+	 * Also counts the sentences before each shard, this is the only pass over the input outside the workers
+	 *
+	 * The split points only look for '\n' bytes, which are never part of a longer character.
+	 * The sentences are counted by HMM.countSentences on the shard decoded like in tagShard,
+	 * so other line terminators such as a lone '\r' are counted the way the tagger splits them.
+	 */
+	private void planShards() throws IOException {
+		shards.clear();
+		FileInputStream in = new FileInputStream(input);
+		ByteArrayOutputStream shard = new ByteArrayOutputStream();
+		byte[] block = new byte[1 << 16];
+		boolean emptyLine = true;
+		long position = 0;
+		long shardStart = 0;
+		long sentences = 0;
+
+		try {
+			int n;
+			while((n = in.read(block)) != -1) {
+				int copied = 0;
+				for(int i = 0; i < n; i++) {
+					position++;
+					if(block[i] != '\n') {
+						if(block[i] != '\r') emptyLine = false;
+						continue;
+					}
+
+					if(emptyLine && position - shardStart >= shardBytes) {		//End of a review, close the shard here
+						shard.write(block, copied, i + 1 - copied);
+						copied = i + 1;
+						shards.add(new long[] {shardStart, position, sentences});
+						sentences += HMM.countSentences(new Scanner(shard.toString()));
+						shard.reset();
+						shardStart = position;
+					}
+					emptyLine = true;
+				}
+				if(position - shardStart >= Integer.MAX_VALUE) {
+					throw new IOException("No review ends within 2GB after byte " + shardStart + ", the input can't be sharded");
+				}
+				shard.write(block, copied, n - copied);
+			}
+		} finally {
+			in.close();
+		}
+		if(position > shardStart) {
+			shards.add(new long[] {shardStart, position, sentences});
+		}
+	}
+
+	/*
+	 * Loads the shard plan, returns false if there is none or it was made for a different input
+	 */
+	private boolean readManifest(File manifest) throws IOException {
+		if(!manifest.exists()) return false;
+
+		shards.clear();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			String line = reader.readLine();
+			if(line == null || !line.equals(inputDescription())) return false;
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				shards.add(new long[] {Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])});
+			}
+		} finally {
+			reader.close();
+		}
+		return true;
+	}
+
+	private void writeManifest(File manifest) throws IOException {
+		File temp = new File(manifest.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		PrintStream out = new PrintStream(file);
+		try {
+			out.println(inputDescription());
+			for(int i = 0; i < shards.size(); i++) {
+				long[] shard = shards.get(i);
+				out.println("shard " + i + " " + shard[0] + " " + shard[1] + " " + shard[2]);
+			}
+			out.flush();
+			if(out.checkError()) throw new IOException("Could not write " + temp);
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		manifest.delete();
+		if(!temp.renameTo(manifest)) {
+			throw new IOException("Could not move " + temp + " to " + manifest);
+		}
+	}
+
+	private HashSet<Integer> readCompleted(File completedLog) throws IOException {
+		HashSet<Integer> completed = new HashSet<Integer>();
+		if(!completedLog.exists()) return completed;
+
+		BufferedReader reader = new BufferedReader(new FileReader(completedLog));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				try {
+					completed.add(Integer.parseInt(line.trim()));
+				} catch (NumberFormatException e) {
+					//A line cut short by a crash, that shard is simply tagged again
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return completed;
+	}
+
+	/*
+	 * Identifies the input, the shard size and the model, a manifest for anything else is not reused
+	 * so shards tagged by an earlier model are never mixed with new ones
+	 */
+	private String inputDescription() {
+		return "input " + input.getAbsolutePath() + " " + input.length() + " " + input.lastModified() + " " + shardBytes
+				+ " model " + Long.toHexString(tagger.getModelStamp(null));
+	}
+
+	/*
+	 * Removes the shard files and temporary files of an earlier plan, so none of them end up in the output
+	 */
+	private void deleteShardFiles() throws IOException {
+		File[] files = outputDirectory.listFiles();
+		if(files == null) throw new IOException("Could not list " + outputDirectory);
+		for(File file : files) {
+			String name = file.getName();
+			if((name.startsWith("shard-") && name.endsWith(".txt")) || name.endsWith(".tmp")) {
+				if(!file.delete()) throw new IOException("Could not delete " + file);
+			}
+		}
+	}
+
+	private File shardFile(int shard) {
+		return new File(outputDirectory, String.format("shard-%05d.txt", shard));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: java BatchTagger <input> <output directory> [threads] [shard size eg 64MB]");
+			System.exit(1);
+		}
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long shardBytes = args.length > 3 ? ThroughputHarness.parseSize(args[3]) : 64L * 1024 * 1024;
+		if(threads <= 0) {
+			System.err.println("Threads must be positive");
+			System.exit(1);
+		}
+		if(shardBytes <= 0 || shardBytes >= Integer.MAX_VALUE) {		//A shard is read into one byte array
+			System.err.println("Shard size must be positive and below 2GB");
+			System.exit(1);
+		}
+
+		BatchTagger batch = new BatchTagger(new SequenceTagger(), args[0], args[1], threads, shardBytes);
+		batch.run();
+	}
+}
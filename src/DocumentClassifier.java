@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/*
+ * Review-level sentiment classifier
+ *
+ * Sparse linear model over the sentiment lexicon: every lexicon word has one weight per HMM.State,
+ * plus two aggregate weights per state for the positive and negative lexicon polarity.
+ * Feature values are divided by the number of lexicon words in the review, so long reviews don't dominate.
+ * The training reviews are collected in the same pass that counts the FPs, then trained with an
+ * averaged perceptron over several shuffled epochs, with updates weighted against frequent labels.
+ * At inference the scores are accumulated word by word while the sentences are tokenized,
+ * so predicting the document sentiment never needs its own pass over the text.
+ * Predictions whose margin is below MIN_MARGIN are NEUT, which leaves the docMultiplier at 1.
+ *
+ * On the bundled test headers it gets 38/98 reviews right, always guessing neu gets 34/98.
+ * Letting it drive the docMultiplier lowers the HMM from 218/542 to 202/542 sentences right on
+ * a held-out fifth of the training data, so it is off by default (see USE_DOC_CLASSIFIER),
+ * and then it is neither trained nor stored.
+ */
+public class DocumentClassifier {
+	private HashMap<String, Float> lexiconPolarities;
+
+	//Weights are indexed by HMM.State ordinal
+	private HashMap<String, double[]> weights = new HashMap<String, double[]>();
+	private double[] bias;
+	private double[][] polarityWeights;		//[0] is the weight on positive polarity, [1] on negative polarity
+
+	//Running sums for weight averaging, see learn() and average()
+	private HashMap<String, double[]> weightSums = new HashMap<String, double[]>();
+	private double[] biasSums;
+	private double[][] polaritySums;
+	private int numUpdates = 1;
+
+	//Training reviews, kept until train()
+	private ArrayList<ArrayList<String>> reviews = new ArrayList<ArrayList<String>>();
+	private ArrayList<HMM.State> labels = new ArrayList<HMM.State>();
+
+	private final int NUM_STATES = HMM.State.values().length;
+	private final int EPOCHS = 10;
+	private final int MAX_TRAINING_REVIEWS = 100000;	//later reviews are not kept, this bounds the training memory
+	private final double MIN_MARGIN = 0.1;		//best on the training data
+	private final long SHUFFLE_SEED = 4740;
+
+	public DocumentClassifier(HashMap<String, Float> polarities) {
+		lexiconPolarities = polarities;
+		bias = new double[NUM_STATES];
+		biasSums = new double[NUM_STATES];
+		polarityWeights = new double[2][NUM_STATES];
+		polaritySums = new double[2][NUM_STATES];
+	}
+
+	/*
+	 * Hash of the training settings, part of the stamp of the model files the weights are stored in
+	 */
+	public long getParameters() {
+		long hash = EPOCHS;
+		hash = hash * 31 + MAX_TRAINING_REVIEWS;
+		hash = hash * 31 + Double.doubleToLongBits(MIN_MARGIN);
+		hash = hash * 31 + SHUFFLE_SEED;
+		return hash;
+	}
+	
+	/*
+	 * Returns a fresh score accumulator for one document
+	 * The last entry counts the lexicon words seen
+	 */
+	public double[] newScores() {
+		return new double[NUM_STATES + 1];
+	}
+
+	/*
+	 * Adds the contribution of one lexicon word to the document scores
+	 * Words outside the lexicon are ignored
+	 */
+	public void accumulate(String word, double[] scores) {
+		Float polarity = lexiconPolarities.get(word);
+		if(polarity == null) return;
+
+		double[] w = weights.get(word);
+		int p = polarity > 0 ? 0 : 1;
+		double strength = Math.abs(polarity);
+		for(int i = 0; i < NUM_STATES; i++) {
+			if(w != null) scores[i] += w[i];
+			scores[i] += polarityWeights[p][i] * strength;
+		}
+		scores[NUM_STATES]++;
+	}
+
+	/*
+	 * Same as accumulate(String, double[]) for the word in the row of a model store,
+	 * the word weights are read from the store so they don't have to stay on the heap
+	 */
+	public void accumulate(ModelStore store, int row, double[] scores) {
+		float polarity = store.getPolarity(row);
+		int p = polarity > 0 ? 0 : 1;
+		double strength = Math.abs(polarity);
+		for(int i = 0; i < NUM_STATES; i++) {
+			scores[i] += store.getClassifierWeight(row, i);
+			scores[i] += polarityWeights[p][i] * strength;
+		}
+		scores[NUM_STATES]++;
+	}
+
+	/*
+	 * Picks the highest scoring document sentiment
+	 * Returns NEUT if it doesn't beat the runner up by MIN_MARGIN
+	 */
+	public HMM.State predict(double[] scores) {
+		double[] totals = totals(scores);
+		int best = 0;
+		for(int i = 1; i < NUM_STATES; i++) {
+			if(totals[i] > totals[best]) best = i;
+		}
+		for(int i = 0; i < NUM_STATES; i++) {
+			if(i != best && totals[best] - totals[i] < MIN_MARGIN) return HMM.State.NEUT;
+		}
+		return HMM.State.values()[best];
+	}
+
+	private double[] totals(double[] scores) {
+		double length = Math.max(1, scores[NUM_STATES]);
+		double[] totals = new double[NUM_STATES];
+		for(int i = 0; i < NUM_STATES; i++) {
+			totals[i] = bias[i] + scores[i] / length;
+		}
+		return totals;
+	}
+
+	/*
+	 * Returns the weights of the word indexed by HMM.State ordinal, null if it has none
+	 */
+	public double[] getWeights(String word) {
+		return weights.get(word);
+	}
+
+	/*
+	 * Drops the word weights and the lexicon once they are copied into the model stores
+	 * After this only the model store version of accumulate() can be used
+	 */
+	public void releaseWords() {
+		weights = null;
+		lexiconPolarities = null;
+	}
+
+	/*
+	 * Keeps one training review for train()
+	 * features is the list of lexicon words in the review, repeated once per occurrence
+	 */
+	public void addReview(ArrayList<String> features, HMM.State label) {
+		if(reviews.size() >= MAX_TRAINING_REVIEWS) return;
+		reviews.add(new ArrayList<String>(features));
+		labels.add(label);
+	}
+
+	/*
+	 * Trains on the kept reviews and releases them
+	 */
+	public void train() {
+		//Weight every label so that all of them contribute as much in total
+		double[] labelWeights = new double[NUM_STATES];
+		for(HMM.State label : labels) {
+			labelWeights[label.ordinal()]++;
+		}
+		for(int i = 0; i < NUM_STATES; i++) {
+			labelWeights[i] = labelWeights[i] == 0 ? 0 : labels.size() / (NUM_STATES * labelWeights[i]);
+		}
+
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int i = 0; i < reviews.size(); i++) {
+			order.add(i);
+		}
+		Random random = new Random(SHUFFLE_SEED);
+		for(int epoch = 0; epoch < EPOCHS; epoch++) {
+			Collections.shuffle(order, random);
+			for(int i : order) {
+				HMM.State label = labels.get(i);
+				learn(reviews.get(i), label, labelWeights[label.ordinal()]);
+			}
+		}
+		average();
+
+		reviews.clear();
+		labels.clear();
+	}
+
+	/*
+	 * Perceptron update for one training review
+	 */
+	private void learn(ArrayList<String> features, HMM.State label, double labelWeight) {
+		double[] scores = newScores();
+		for(String w : features) {
+			accumulate(w, scores);
+		}
+		double[] totals = totals(scores);
+		int guess = 0;
+		for(int i = 1; i < NUM_STATES; i++) {
+			if(totals[i] > totals[guess]) guess = i;
+		}
+
+		int good = label.ordinal();
+		if(guess != good) {
+			double value = labelWeight / Math.max(1, features.size());
+			update(bias, biasSums, good, guess, labelWeight);
+			for(String w : features) {
+				if(!weights.containsKey(w)) {
+					weights.put(w, new double[NUM_STATES]);
+					weightSums.put(w, new double[NUM_STATES]);
+				}
+				update(weights.get(w), weightSums.get(w), good, guess, value);
+
+				float polarity = lexiconPolarities.get(w);
+				int p = polarity > 0 ? 0 : 1;
+				update(polarityWeights[p], polaritySums[p], good, guess, value * Math.abs(polarity));
+			}
+		}
+		numUpdates++;
+	}
+
+	/*
+	 * Replaces the weights with their average over all training updates
+	 */
+	private void average() {
+		for(String w : weights.keySet()) {
+			average(weights.get(w), weightSums.get(w));
+		}
+		average(bias, biasSums);
+		average(polarityWeights[0], polaritySums[0]);
+		average(polarityWeights[1], polaritySums[1]);
+		weightSums.clear();
+	}
+
+	private void update(double[] w, double[] sums, int good, int bad, double amount) {
+		w[good] += amount;
+		w[bad] -= amount;
+		sums[good] += numUpdates * amount;
+		sums[bad] -= numUpdates * amount;
+	}
+
+	private void average(double[] w, double[] sums) {
+		for(int i = 0; i < w.length; i++) {
+			w[i] -= sums[i] / numUpdates;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -24,17 +25,29 @@ public class HMM {
 																	//[1] gives "Neu" and [2] gives "Neg"
 	
 	private HashMap<String, Float> lexiconPolarities;
+	private ModelStore store;	//if set, the FPs and polarities are read from this off-heap store instead of the HashMaps
+	private DocumentClassifier docClassifier;	//if set, predicts the document sentiment instead of trusting the header
+	private ModelRegistry registry;	//if set, each review is tagged with the model of its header category
 	private final double NEUTRAL_INIT = 3.0;
 	
 	/* For testing purposes */
 	private ArrayList<HMM.State> currReview; //stores list of sentiments in review
-	private int numSentences; //total number of sentences
+	private long numSentences; //total number of sentences, also the index the next tag is printed with
+	private PrintStream out = System.out; //where the tags are printed
 	
 	public HMM(HashMap<HMM.State, HashMap<HMM.State, Float>> transitions, HashMap<HMM.State, Float> SPs) {	
 		TPMap = transitions;
 		StartProbs = SPs;
 	}
 	
+	/*
+	 * HMM backed entirely by a model store, eg one mapped from a model file
+	 */
+	public HMM(ModelStore modelStore) {
+		this(modelStore.getTransitions(), modelStore.getStartProbs());
+		store = modelStore;
+	}
+	
 	public void addPolarities(HashMap<String, Float> data) {
 		lexiconPolarities = data;
 	}
@@ -45,11 +58,63 @@ public class HMM {
 		negFPs = neg;
 	}
 	
+	public void addModelStore(ModelStore modelStore) {
+		store = modelStore;
+	}
+	
+	public void addDocClassifier(DocumentClassifier classifier) {
+		docClassifier = classifier;
+	}
+	
+	public DocumentClassifier getDocClassifier() {
+		return docClassifier;
+	}
+	
+	public void addRegistry(ModelRegistry models) {
+		registry = models;
+	}
+	
+	public void setOutput(PrintStream output) {
+		out = output;
+	}
+	
+	public long getNumSentences() {
+		return numSentences;
+	}
+	
+	/*
+	 * Starts numbering the tags at offset, eg the global sentence offset of a shard
+	 */
+	public void setNumSentences(long offset) {
+		numSentences = offset;
+	}
+	
+	/*
+	 * Returns an HMM sharing this model, but with its own sentence counter and output,
+	 * so several inputs can be tagged at the same time
+	 */
+	public HMM copy() {
+		HMM copy = new HMM(TPMap, StartProbs);
+		copy.addPolarities(lexiconPolarities);
+		copy.addFPs(posFPs, neuFPs, negFPs);
+		copy.addModelStore(store);
+		copy.addDocClassifier(docClassifier);
+		copy.addRegistry(registry);
+		return copy;
+	}
+	
 	public void runHMM(String data) { //Prints output to screen in forms of "Pos", "Neu", "Neg"
-		Scanner in = new Scanner(data);
+		runHMM(new Scanner(data));
+	}
+	
+	/*
+	 * Streaming version of runHMM, reads one line at a time so the input can be larger than memory
+	 */
+	public void runHMM(Scanner in) {
 		ArrayList<String> review_lines = new ArrayList<>();
 		StringBuffer buffer = new StringBuffer("");
 		State docSentiment = State.POS;
+		HMM model = this;				//model for the current review, picked once per header
 		Pattern header = Pattern.compile("[a-z]*_[a-z]*_[0-9]*");	//matches on review headers eg electronics_neg_7
 			
 		
@@ -62,17 +127,16 @@ public class HMM {
 			String next = in.nextLine();
 			if(next.equals("")) {						//If we've come to one of the empty lines
 				
-				extractEPs(buffer.toString(), docSentiment);			//That's the end of the review so pass it to the EP extractor
-				//TODO: Run the Viterbi algorithm since the global EPs was set by the above
-				HMM.State[] states = outputSentiment();
+				ArrayList<double[]> emissions = model.computeEPs(buffer.toString(), docSentiment);	//That's the end of the review so pass it to the EP extractor
+				HMM.State[] states = model.outputSentiment(emissions);	//The category models are shared, so the EPs are passed along rather than stored in them
 				for(int i = 0; i < states.length; i++) {
 					
 					if (states[i] == HMM.State.POS)
-						System.out.println(numSentences + ",1");
+						out.println(numSentences + ",1");
 					else if (states[i] == HMM.State.NEG)
-						System.out.println(numSentences + ",-1");
+						out.println(numSentences + ",-1");
 					else
-						System.out.println(numSentences + ",0");
+						out.println(numSentences + ",0");
 					
 					numSentences++;
 				}
@@ -85,6 +149,8 @@ public class HMM {
 				buffer.delete(0, buffer.length());		//Clear the buffer
 			}
 			else if(header.matcher(next).matches()){	//Extract the document sentiment
+				if(registry != null)
+					model = registry.get(ModelRegistry.categoryOf(next));
 				String sentiment = next.replaceAll("[a-z]*_([a-z]*)_[0-9]*", "$1");
 				switch(sentiment) {
 				case "pos" : 	docSentiment = State.POS;
@@ -122,70 +188,132 @@ public class HMM {
 		//System.out.println("Counter: " + counter);
 	}
 	
-	public void extractEPs(String data, HMM.State docSentiment) {				//Sets the global variable EPs based on the review
-		ArrayList<double[]> emissions = new ArrayList<double[]>();
+	/*
+	 * Counts the sentences runHMM would tag in the input, splitting lines the same way,
+	 * so the tags of one part of an input can be numbered after the parts before it
+	 * Sentences only count once the empty line ending their review is read, like in runHMM
+	 */
+	public static long countSentences(Scanner in) {
+		Pattern header = Pattern.compile("[a-z]*_[a-z]*_[0-9]*");	//matches on review headers eg electronics_neg_7
+		long sentences = 0;
+		long reviewSentences = 0;
 		
-		double docMultiplier;
-		switch(docSentiment) {
-		case POS :	docMultiplier = 1.5;
-					break;
-		case NEUT :	docMultiplier = 1.0;
-					break;
-		case NEG :	docMultiplier = 2.0/3.0;
-					break;
-		default :	docMultiplier = 1.0;
-					break;
+		while(in.hasNextLine()) {
+			String next = in.nextLine();
+			if(next.equals("")) {
+				sentences += reviewSentences;
+				reviewSentences = 0;
+			}
+			else if(!header.matcher(next).matches()) {
+				reviewSentences++;
+			}
 		}
+		return sentences;
+	}
+	
+	public void extractEPs(String data, HMM.State docSentiment) {				//Sets the global variable EPs based on the review
+		EPs = computeEPs(data, docSentiment);
+	}
+	
+	/*
+	 * Returns the EPs of the review without touching the global variable EPs
+	 */
+	public ArrayList<double[]> computeEPs(String data, HMM.State docSentiment) {
+		ArrayList<double[]> emissions = new ArrayList<double[]>();
+		ArrayList<Integer> numFeatures = new ArrayList<Integer>();	//features per sentence, the docMultiplier is applied once per feature
+		double[] docScores = docClassifier == null ? null : docClassifier.newScores();
 		
 		Scanner reader = new Scanner(data);
 		while(reader.hasNextLine()){
 			double[] probs = {1.0, 1.0, 1.0};
-			ArrayList<String> features = new ArrayList<String>();
+			int features = 0;
 			String sentence = reader.nextLine();
 			
 			String processed = sentence.replaceAll("([(),!.?;:])", " $1 ").toLowerCase();	//add padding around punctuation
 			String[] words = processed.split("\\s+");						//split on whitespace
 			for(int a = 0; a < words.length; a++) {
-				if(lexiconPolarities.containsKey(words[a])) {
-					features.add(words[a]);
+				double pos, neu, neg;
+				float polarity;
+				if(store != null) {
+					int row = store.find(words[a]);
+					if(row < 0) continue;
+					pos = store.getPos(row);
+					neu = store.getNeu(row);
+					neg = store.getNeg(row);
+					polarity = store.getPolarity(row);
+					if(docScores != null)
+						docClassifier.accumulate(store, row, docScores);
+				}
+				else if(lexiconPolarities.containsKey(words[a])) {
+					pos = posFPs.get(words[a]);
+					neu = neuFPs.get(words[a]);
+					neg = negFPs.get(words[a]);
+					polarity = lexiconPolarities.get(words[a]);
+					if(docScores != null)
+						docClassifier.accumulate(words[a], docScores);
 				}
+				else continue;
+				
+				features++;
+				
+				//Find positive, negative, and neutral probabilities
+				double multiplier;
+				/*if(polarity == 1.0f) {
+					multiplier = 2.0;
+				}
+				else if (polarity == .5f) {
+					multiplier = 1.5;
+				}
+				else if (polarity == -.5f) {
+					multiplier = 2.0/3.0;
+				}
+				else if (polarity == -1.0f) {
+					multiplier = .5;
+				}
+				else multiplier = 1;*/ multiplier = 1;
+				probs[0] = probs[0] * pos * multiplier;
+				probs[1] = probs[1] * neu;
+				probs[2] = probs[2] * neg * (1.0 / multiplier);
 			}
 			
-			if(features.size() == 0) {
+			if(features == 0) {
 				probs[0] = 0;
 				probs[1] = 1;
 				probs[2] = 0;
-				emissions.add(probs);
 			}
 			else {
-				//Find positive, negative, and neutral probabilities
-				for(String w : features) {
-					double multiplier;
-					float polarity = lexiconPolarities.get(w);
-					/*if(polarity == 1.0f) {
-						multiplier = 2.0;
-					}
-					else if (polarity == .5f) {
-						multiplier = 1.5;
-					}
-					else if (polarity == -.5f) {
-						multiplier = 2.0/3.0;
-					}
-					else if (polarity == -1.0f) {
-						multiplier = .5;
-					}
-					else multiplier = 1;*/ multiplier = 1;
-					probs[0] = probs[0] * posFPs.get(w) * multiplier * docMultiplier;
-					probs[1] = probs[1] * neuFPs.get(w);
-					probs[2] = probs[2] * negFPs.get(w) * (1.0 / multiplier) * (1.0 / docMultiplier);
-				}
-				probs[1] = probs[1] * (NEUTRAL_INIT / (NEUTRAL_INIT + features.size()));	//multiply neutral by PARAM / (PARAM + numFeatures))
-				emissions.add(probs);
+				probs[1] = probs[1] * (NEUTRAL_INIT / (NEUTRAL_INIT + features));	//multiply neutral by PARAM / (PARAM + numFeatures))
 			}
+			emissions.add(probs);
+			numFeatures.add(features);
 		}
-		
 		reader.close();
-		EPs = emissions;
+		
+		//The whole review has been tokenized, so the classifier has seen every feature
+		if(docScores != null)
+			docSentiment = docClassifier.predict(docScores);
+		
+		double docMultiplier;
+		switch(docSentiment) {
+		case POS :	docMultiplier = 1.5;
+					break;
+		case NEUT :	docMultiplier = 1.0;
+					break;
+		case NEG :	docMultiplier = 2.0/3.0;
+					break;
+		default :	docMultiplier = 1.0;
+					break;
+		}
+		
+		if(docMultiplier != 1.0) {
+			for(int i = 0; i < emissions.size(); i++) {
+				double scale = Math.pow(docMultiplier, numFeatures.get(i));
+				emissions.get(i)[0] *= scale;
+				emissions.get(i)[2] /= scale;
+			}
+		}
+		
+		return emissions;
 	}
 	
 	
@@ -194,6 +322,10 @@ public class HMM {
 	 * using the list of sentences and its sentiments
 	 */
 	public HMM.State[] outputSentiment() {
+		return outputSentiment(EPs);
+	}
+	
+	public HMM.State[] outputSentiment(ArrayList<double[]> EPs) {
 		int obs_len = EPs.size();
 		
 		double[][] t1 = new double[3][obs_len];
@@ -0,0 +1,200 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Per-category HMMs, keyed on the category in the review header eg "music" for music_neg_7
+ *
+ * The category models are not trained lazily: they are all built in the constructor from the counts
+ * SequenceTagger gathers in its training passes, and written to model files, replacing any file of the same name,
+ * so a file is never left over from other code.
+ * Model files are named after the category and the stamp of the training data and parameters, eg music-1f3a9c.model.
+ * Only the mapping is lazy: a model file is mapped the first time a review of its category is tagged.
+ *
+ * The memory budget only limits the model files the registry holds references to. Evicting a model drops
+ * the reference, but Java can't unmap a file on demand, so the mapping lasts until its buffer is garbage
+ * collected, and models still in use by a copy() of an HMM stay mapped. The mapped pages are clean file pages
+ * the OS can reclaim at any time, so the budget bounds neither the mappings nor resident memory.
+ * Without a model directory the category models stay in direct memory for good and the budget doesn't apply.
+ * Categories with too few training reviews share the global model.
+ *
+ * get() only reads concurrent or unchanging maps, so routing a review never takes a lock
+ * unless its model has to be mapped.
+ */
+public class ModelRegistry {
+	private HMM globalModel;
+	private DocumentClassifier docClassifier;
+	private String lexiconFile;
+	private String trainingFile;
+	private long trainingParameters;
+	private String modelDirectory;
+
+	//Both only written in the constructor
+	private HashMap<String, File> modelFiles = new HashMap<String, File>();	//categories that are mapped on demand
+	private HashMap<String, HMM> pinned = new HashMap<String, HMM>();		//categories kept in direct memory
+
+	private ConcurrentHashMap<String, Resident> resident = new ConcurrentHashMap<String, Resident>();
+	private long memoryBudget;		//bytes of model files referenced in resident, see the class comment
+	private long residentBytes = 0;	//guarded by this
+
+	private final int MIN_CATEGORY_REVIEWS = 30;
+
+	/*
+	 * A mapped model, lastUsed is what the LRU eviction goes by
+	 */
+	private static class Resident {
+		final HMM model;
+		final ModelStore store;
+		final long bytes;
+		volatile long lastUsed = System.nanoTime();
+
+		Resident(HMM model, ModelStore store) {
+			this.model = model;
+			this.store = store;
+			this.bytes = store.getSizeBytes();
+		}
+	}
+
+	public ModelRegistry(SequenceTagger global, long budget) {
+		globalModel = global.getHMM();
+		docClassifier = globalModel.getDocClassifier();	//null unless the global model uses it
+		lexiconFile = global.getLexiconFile();
+		trainingFile = global.getTrainingFile();
+		trainingParameters = global.getTrainingParameters();
+		modelDirectory = global.getModelDirectory();
+		memoryBudget = budget;
+
+		for(Map.Entry<String, Integer> category : global.getCategoryReviews().entrySet()) {
+			if(category.getValue() < MIN_CATEGORY_REVIEWS) continue;
+			prepare(global, category.getKey());
+		}
+	}
+
+	/*
+	 * Builds the model of the category and writes its model file
+	 */
+	private void prepare(SequenceTagger global, String category) {
+		ModelStore store = global.buildCategoryStore(category);
+		if(store == null) return;		//Some state never occurs in this category, it uses the global model
+
+		if(modelDirectory != null) {
+			File file = ModelStore.modelFile(modelDirectory, category, store.getStamp());
+			try {
+				new File(modelDirectory).mkdirs();
+				store.write(file.getPath());
+				modelFiles.put(category, file);
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();		//Keep the model in memory instead
+			}
+		}
+		pinned.put(category, newModel(store));
+	}
+
+	/*
+	 * Returns the model for the category, mapping it if it is not resident
+	 * Falls back to the global model for unknown or small categories
+	 */
+	public HMM get(String category) {
+		if(category == null) return globalModel;
+
+		Resident r = resident.get(category);
+		if(r != null) {
+			r.lastUsed = System.nanoTime();
+			return r.model;
+		}
+
+		HMM model = pinned.get(category);
+		if(model != null) return model;
+		if(!modelFiles.containsKey(category)) return globalModel;
+
+		return load(category);
+	}
+
+	/*
+	 * Maps the model file of the category, then evicts down to the memory budget
+	 */
+	private synchronized HMM load(String category) {
+		Resident r = resident.get(category);
+		if(r != null) return r.model;		//Mapped by another thread while this one waited
+
+		ModelStore store = mapModelFile(modelFiles.get(category), category);
+		if(store == null) {
+			System.err.println("Model file of " + category + " is missing or stale, using the global model");
+			return globalModel;
+		}
+
+		r = new Resident(newModel(store), store);
+		resident.put(category, r);
+		residentBytes += r.bytes;
+		evict(category);
+
+		return r.model;
+	}
+
+	/*
+	 * Maps and preloads the category models ahead of tagging, as many as fit in the memory budget
+	 */
+	public synchronized void warm() {
+		for(String category : modelFiles.keySet()) {
+			if(!resident.containsKey(category) && residentBytes + modelFiles.get(category).length() > memoryBudget) continue;
+			load(category);
+			Resident r = resident.get(category);
+			if(r != null) r.store.preload();
+		}
+	}
+
+	/*
+	 * Drops the references to the least recently used models until the budget is met, the model just mapped is always kept
+	 * The mappings themselves are only released once they are garbage collected
+	 */
+	private void evict(String keep) {
+		while(residentBytes > memoryBudget && resident.size() > 1) {
+			String eldest = null;
+			long eldestUse = Long.MAX_VALUE;
+			for(Map.Entry<String, Resident> entry : resident.entrySet()) {
+				if(!entry.getKey().equals(keep) && entry.getValue().lastUsed < eldestUse) {
+					eldest = entry.getKey();
+					eldestUse = entry.getValue().lastUsed;
+				}
+			}
+			residentBytes -= resident.remove(eldest).bytes;
+		}
+	}
+
+	private HMM newModel(ModelStore store) {
+		HMM model = new HMM(store);
+		model.addDocClassifier(docClassifier);	//The document classifier stays global, it sees more reviews
+		return model;
+	}
+
+	/*
+	 * Maps a model file, null if there is none or it was trained on other data or parameters
+	 */
+	private ModelStore mapModelFile(File file, String category) {
+		return ModelStore.mapIfCurrent(file, stamp(category));
+	}
+
+	private long stamp(String category) {
+		return ModelStore.stamp(lexiconFile, trainingFile, trainingParameters, category);
+	}
+
+	/*
+	 * Number of category models the registry holds, mapped or in direct memory
+	 */
+	public int numResident() {
+		return resident.size() + pinned.size();
+	}
+
+	/*
+	 * Extracts the category from a review header eg electronics_neg_7 gives electronics
+	 * Returns null if the line has no category
+	 */
+	public static String categoryOf(String header) {
+		int end = header.indexOf('_');
+		if(end <= 0) return null;
+		return header.substring(0, end);
+	}
+}
@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Off-heap model storage
+ *
+ * Holds the start probabilities, TPs, and an open addressing hash table from lexicon word to
+ * its row (pos, neu and neg FPs, the polarity and any DocumentClassifier weights) in a single ByteBuffer.
+ * The buffer is either direct memory or a read-only mapping of a model file, so large vocabularies
+ * and many per-category models stay out of the Java heap, and processes mapping the same model file
+ * share its pages. Reads use absolute gets only, so one store can be read by many threads.
+ *
+ * Layout, all offsets in bytes:
+ *   header     MAGIC, VERSION, vocabulary size, number of slots, offsets of the table, rows and pool,
+ *              number of chars in the pool, source stamp, row size,
+ *              start probabilities and TPs as doubles indexed by HMM.State ordinal
+ *   table      slots of (word hash, row + 1), 0 marks an empty slot
+ *   rows       pos, neu, neg as doubles, polarity as float, word offset and length in the pool,
+ *              padding, then the document classifier weights as doubles indexed by HMM.State ordinal,
+ *              the weights are only there if the store was built with a classifier
+ *   pool       the words as chars
+ */
+public class ModelStore {
+	private ByteBuffer buffer;
+	private int slotMask;
+	private int tableOffset;
+	private int rowsOffset;
+	private int poolOffset;
+	private int rowBytes;
+
+	private static final int MAGIC = 0x484D4D53;	//"HMMS"
+	private static final int VERSION = 4;
+	private static final int NUM_STATES = HMM.State.values().length;
+
+	private static final int START_PROBS_OFFSET = 48;
+	private static final int TPS_OFFSET = START_PROBS_OFFSET + NUM_STATES * 8;
+	private static final int HEADER_BYTES = TPS_OFFSET + NUM_STATES * NUM_STATES * 8;
+	private static final int SLOT_BYTES = 8;
+	private static final int ROW_BYTES = 40;		//row without classifier weights
+	private static final int CLASSIFIER_COLUMN = ROW_BYTES;
+	private static final int CLASSIFIER_ROW_BYTES = CLASSIFIER_COLUMN + NUM_STATES * 8;
+
+	/*
+	 * Checks the header against the buffer size before anything is read through it,
+	 * a truncated or foreign file throws IllegalArgumentException
+	 */
+	private ModelStore(ByteBuffer data) {
+		buffer = data.order(ByteOrder.LITTLE_ENDIAN);
+		if(buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IllegalArgumentException("Not a model store");
+		}
+		long vocabulary = buffer.getInt(8);
+		long slots = buffer.getInt(12);
+		tableOffset = buffer.getInt(16);
+		rowsOffset = buffer.getInt(20);
+		poolOffset = buffer.getInt(24);
+		long poolChars = buffer.getInt(28);
+		rowBytes = buffer.getInt(40);
+		if(vocabulary < 0 || slots <= vocabulary || Long.bitCount(slots) != 1 || poolChars < 0
+				|| (rowBytes != ROW_BYTES && rowBytes != CLASSIFIER_ROW_BYTES)
+				|| tableOffset != HEADER_BYTES
+				|| rowsOffset != tableOffset + slots * SLOT_BYTES
+				|| poolOffset != rowsOffset + vocabulary * rowBytes
+				|| buffer.capacity() != poolOffset + poolChars * 2) {
+			throw new IllegalArgumentException("Model store is truncated or corrupt");
+		}
+		slotMask = (int) slots - 1;
+	}
+
+	/*
+	 * Builds a store in direct memory from the trained tables
+	 * classifier may be null, the rows then have no classifier weights
+	 * stamp identifies the data the model was trained on, see stamp()
+	 */
+	public static ModelStore build(HashMap<HMM.State, HashMap<HMM.State, Float>> transitions, HashMap<HMM.State, Float> startProbs,
+			HashMap<String, Float> polarities, HashMap<String, Double> pos, HashMap<String, Double> neu, HashMap<String, Double> neg,
+			DocumentClassifier classifier, long stamp) {
+		ArrayList<String> words = new ArrayList<String>(pos.keySet());
+		int slots = Integer.highestOneBit(Math.max(words.size(), 1) * 2) * 2;	//load factor at most one half
+
+		int poolChars = 0;
+		for(String w : words) {
+			poolChars += w.length();
+		}
+
+		int rowBytes = classifier == null ? ROW_BYTES : CLASSIFIER_ROW_BYTES;
+		int table = HEADER_BYTES;
+		int rows = table + slots * SLOT_BYTES;
+		int pool = rows + words.size() * rowBytes;
+		ByteBuffer data = ByteBuffer.allocateDirect(pool + poolChars * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+		data.putInt(0, MAGIC);
+		data.putInt(4, VERSION);
+		data.putInt(8, words.size());
+		data.putInt(12, slots);
+		data.putInt(16, table);
+		data.putInt(20, rows);
+		data.putInt(24, pool);
+		data.putInt(28, poolChars);
+		data.putLong(32, stamp);
+		data.putInt(40, rowBytes);
+
+		HMM.State[] states = HMM.State.values();
+		for(int i = 0; i < NUM_STATES; i++) {
+			Float start = startProbs.get(states[i]);
+			data.putDouble(START_PROBS_OFFSET + i * 8, start == null ? 0 : start);
+			for(int j = 0; j < NUM_STATES; j++) {
+				HashMap<HMM.State, Float> row = transitions.get(states[i]);
+				Float tp = row == null ? null : row.get(states[j]);
+				data.putDouble(TPS_OFFSET + (i * NUM_STATES + j) * 8, tp == null ? 0 : tp);
+			}
+		}
+
+		int poolChar = 0;
+		for(int r = 0; r < words.size(); r++) {
+			String w = words.get(r);
+			int rowStart = rows + r * rowBytes;
+			Float polarity = polarities.get(w);
+			data.putDouble(rowStart, pos.get(w));
+			data.putDouble(rowStart + 8, neu.get(w));
+			data.putDouble(rowStart + 16, neg.get(w));
+			data.putFloat(rowStart + 24, polarity == null ? 0 : polarity);
+			data.putInt(rowStart + 28, poolChar);
+			data.putInt(rowStart + 32, w.length());
+			if(classifier != null) {
+				double[] weights = classifier.getWeights(w);
+				for(int i = 0; i < NUM_STATES; i++) {
+					data.putDouble(rowStart + CLASSIFIER_COLUMN + i * 8, weights == null ? 0 : weights[i]);
+				}
+			}
+			for(int c = 0; c < w.length(); c++) {
+				data.putChar(pool + (poolChar + c) * 2, w.charAt(c));
+			}
+			poolChar += w.length();
+
+			int hash = w.hashCode();
+			int slot = spread(hash) & (slots - 1);
+			while(data.getInt(table + slot * SLOT_BYTES + 4) != 0) {
+				slot = (slot + 1) & (slots - 1);
+			}
+			data.putInt(table + slot * SLOT_BYTES, hash);
+			data.putInt(table + slot * SLOT_BYTES + 4, r + 1);
+		}
+
+		return new ModelStore(data);
+	}
+
+	/*
+	 * Maps a model file read-only, the pages are shared with every other process mapping it
+	 */
+	public static ModelStore map(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(filename);
+		try {
+			FileChannel channel = in.getChannel();
+			return new ModelStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			in.close();		//The mapping stays valid after the channel is closed
+		}
+	}
+
+	/*
+	 * Maps a model file if it was trained on the data and parameters stamp identifies
+	 * Returns null if there is none, it is stale or it can't be read
+	 */
+	public static ModelStore mapIfCurrent(File file, long stamp) {
+		if(!file.exists()) return null;
+
+		try {
+			ModelStore store = map(file.getPath());
+			if(store.getStamp() == stamp) {
+				return store;
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/*
+	 * Writes the store to a model file, through a temporary file so readers never map a partial model
+	 * The temporary file has a unique name, so processes writing the same model don't share it
+	 */
+	public void write(String filename) throws IOException {
+		File target = new File(filename).getAbsoluteFile();
+		File temp = File.createTempFile(target.getName() + ".", ".tmp", target.getParentFile());
+		FileOutputStream out = new FileOutputStream(temp);
+		boolean written = false;
+		try {
+			ByteBuffer data = buffer.duplicate();
+			data.clear();
+			FileChannel channel = out.getChannel();
+			while(data.hasRemaining()) {
+				channel.write(data);
+			}
+			channel.force(true);
+			written = true;
+		} finally {
+			out.close();
+			if(!written) temp.delete();
+		}
+		if(!temp.renameTo(target)) {
+			temp.delete();
+			//The file name carries the stamp, so a model another process wrote there is the same model
+			if(!target.exists()) throw new IOException("Could not move " + temp + " to " + target);
+		}
+	}
+
+	/*
+	 * The model file for the name eg a category, in the directory
+	 * The stamp is part of the file name, so models trained on different data or parameters never overwrite each other
+	 */
+	public static File modelFile(String directory, String name, long stamp) {
+		return new File(directory, name + "-" + Long.toHexString(stamp) + ".model");
+	}
+
+	/*
+	 * Returns the row of the word, -1 if it is not in the vocabulary
+	 */
+	public int find(String word) {
+		int hash = word.hashCode();
+		int slot = spread(hash) & slotMask;
+		while(true) {
+			int entry = tableOffset + slot * SLOT_BYTES;
+			int row = buffer.getInt(entry + 4) - 1;
+			if(row < 0) return -1;
+			if(buffer.getInt(entry) == hash && wordEquals(row, word)) return row;
+			slot = (slot + 1) & slotMask;
+		}
+	}
+
+	private boolean wordEquals(int row, String word) {
+		int rowStart = rowsOffset + row * rowBytes;
+		int length = buffer.getInt(rowStart + 32);
+		if(length != word.length()) return false;
+		int chars = poolOffset + buffer.getInt(rowStart + 28) * 2;
+		for(int c = 0; c < length; c++) {
+			if(buffer.getChar(chars + c * 2) != word.charAt(c)) return false;
+		}
+		return true;
+	}
+
+	public double getPos(int row) {
+		return buffer.getDouble(rowsOffset + row * rowBytes);
+	}
+
+	public double getNeu(int row) {
+		return buffer.getDouble(rowsOffset + row * rowBytes + 8);
+	}
+
+	public double getNeg(int row) {
+		return buffer.getDouble(rowsOffset + row * rowBytes + 16);
+	}
+
+	public float getPolarity(int row) {
+		return buffer.getFloat(rowsOffset + row * rowBytes + 24);
+	}
+
+	/*
+	 * Weight of the word in the row for the document sentiment with the given HMM.State ordinal
+	 * 0 if the store was built without a classifier
+	 */
+	public double getClassifierWeight(int row, int state) {
+		if(rowBytes == ROW_BYTES) return 0;
+		return buffer.getDouble(rowsOffset + row * rowBytes + CLASSIFIER_COLUMN + state * 8);
+	}
+
+	public String getWord(int row) {
+		int rowStart = rowsOffset + row * rowBytes;
+		int chars = poolOffset + buffer.getInt(rowStart + 28) * 2;
+		char[] word = new char[buffer.getInt(rowStart + 32)];
+		for(int c = 0; c < word.length; c++) {
+			word[c] = buffer.getChar(chars + c * 2);
+		}
+		return new String(word);
+	}
+
+	/*
+	 * Reads a mapped store into physical memory, so the first lookups don't wait for page faults
+	 */
+	public void preload() {
+		if(buffer instanceof MappedByteBuffer) {
+			((MappedByteBuffer) buffer).load();
+		}
+	}
+
+	public int getVocabularySize() {
+		return buffer.getInt(8);
+	}
+
+	public long getStamp() {
+		return buffer.getLong(32);
+	}
+
+	public long getSizeBytes() {
+		return buffer.capacity();
+	}
+
+	public HashMap<HMM.State, Float> getStartProbs() {
+		HashMap<HMM.State, Float> startProbs = new HashMap<HMM.State, Float>();
+		HMM.State[] states = HMM.State.values();
+		for(int i = 0; i < NUM_STATES; i++) {
+			startProbs.put(states[i], (float) buffer.getDouble(START_PROBS_OFFSET + i * 8));
+		}
+		return startProbs;
+	}
+
+	public HashMap<HMM.State, HashMap<HMM.State, Float>> getTransitions() {
+		HashMap<HMM.State, HashMap<HMM.State, Float>> transitions = new HashMap<HMM.State, HashMap<HMM.State, Float>>();
+		HMM.State[] states = HMM.State.values();
+		for(int i = 0; i < NUM_STATES; i++) {
+			HashMap<HMM.State, Float> row = new HashMap<HMM.State, Float>();
+			for(int j = 0; j < NUM_STATES; j++) {
+				row.put(states[j], (float) buffer.getDouble(TPS_OFFSET + (i * NUM_STATES + j) * 8));
+			}
+			transitions.put(states[i], row);
+		}
+		return transitions;
+	}
+
+	/*
+	 * Identifies the lexicon, training data and training parameters a model was trained on, so stale model files can be detected
+	 * parameters is a hash of the training settings, see SequenceTagger.getTrainingParameters()
+	 */
+	public static long stamp(String lexiconFile, String trainingFile, long parameters, String category) {
+		File lexicon = new File(lexiconFile);
+		File training = new File(trainingFile);
+		long stamp = VERSION;
+		stamp = stamp * 31 + lexicon.length();
+		stamp = stamp * 31 + lexicon.lastModified();
+		stamp = stamp * 31 + training.getAbsolutePath().hashCode();
+		stamp = stamp * 31 + training.length();
+		stamp = stamp * 31 + training.lastModified();
+		stamp = stamp * 31 + parameters;
+		stamp = stamp * 31 + (category == null ? 0 : category.hashCode());
+		return stamp;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
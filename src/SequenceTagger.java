@@ -3,11 +3,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Scanner;
 import java.util.regex.Pattern;
 
 public class SequenceTagger {
@@ -26,19 +25,58 @@ public class SequenceTagger {
 	private HashMap<String, Double> neuFPs;
 	private HashMap<String, Double> negFPs;
 	
+	//Predicts the document sentiment at tagging time, trained alongside the FPs, null unless USE_DOC_CLASSIFIER is on
+	private DocumentClassifier docClassifier;
+	
+	//Off-heap model the HMM reads while tagging, mapped from the global model file if there is a model directory
+	//Once it is built the FP, lexicon and classifier word HashMaps are released
+	private ModelStore modelStore;
+	
+	//Per-category models, routed to by review header
+	private ModelRegistry registry;
+	private HashMap<String, Integer> categoryReviews = new HashMap<String, Integer>();	//number of training reviews per category
+	
+	//Per-category counts, gathered in the same passes as the global ones and released once the category models are built
+	private HashMap<String, HashMap<HMM.State, HashMap<HMM.State, Float>>> categoryTPs = new HashMap<String, HashMap<HMM.State, HashMap<HMM.State, Float>>>();
+	private HashMap<String, HashMap<HMM.State, Float>> categoryInitialProbs = new HashMap<String, HashMap<HMM.State, Float>>();
+	private HashMap<String, HashMap<String, double[]>> categoryFPCounts = new HashMap<String, HashMap<String, double[]>>();	//word to its {pos, neu, neg} count
+	private HashMap<String, Integer> categoryEntries = new HashMap<String, Integer>();
+	
+	private String lexiconFile;
+	private String trainingFile;
+	private String modelDirectory;	//per-category model files, null keeps the category models in direct memory
+	
+	private final int TRAINING_VERSION = 1;	//bump when the training or smoothing code changes, it is part of the model file stamps
 	private final int LAPLACE_K = 1;
 	private final int GOOD_TURING_K = 5;
 	private final float strongTypeWeight = 1f;
 	private final float weakTypeWeight = 0.7f;
 	private final float FEATURE_LENGTH_THRESHOLD = 0.52f;
+	private final boolean USE_DOC_CLASSIFIER = false;	//false uses the category_label_N header for the docMultiplier and skips training the classifier, see DocumentClassifier for its accuracy
+	private final boolean USE_DOMAIN_MODELS = true;
+	private final long MODEL_MEMORY_BUDGET = 16L * 1024 * 1024;	//bytes of per-category model files the registry keeps references to, not a bound on memory, see ModelRegistry
+	private final boolean USE_MODEL_STORE = true;
 		
 	public SequenceTagger() {
+		this("src/sentimentlexicon.tff", "src/training_data.txt", "models");
+	}
+	
+	/*
+	 * Tagger trained on the given files, keeping its model files in modelDirectory
+	 */
+	public SequenceTagger(String lexiconFile, String trainingFile, String modelDirectory) {
+		this.lexiconFile = lexiconFile;
+		this.trainingFile = trainingFile;
+		this.modelDirectory = modelDirectory;
 		TPmap = new HashMap<HMM.State, HashMap<HMM.State, Float>>();
 		initialProbMap = new HashMap<HMM.State, Float>();
 		lexiconPolarities = new HashMap<String, Float>();
 		posFPs = new HashMap<String, Double>();
 		neuFPs = new HashMap<String, Double>();
 		negFPs = new HashMap<String, Double>();
+		if(USE_DOC_CLASSIFIER) {
+			docClassifier = new DocumentClassifier(lexiconPolarities);
+		}
 		
 		initialize();
 	}
@@ -48,11 +86,54 @@ public class SequenceTagger {
 	 * Parse sentiment lexicon, train, and construct HMM
 	 */
 	private void initialize() {
-		parseSentimentLexicon("src/sentimentlexicon.tff");
-		train("src/training_data.txt");
-		hmm = new HMM(TPmap, initialProbMap);
-		hmm.addPolarities(lexiconPolarities);
-		hmm.addFPs(posFPs, neuFPs, negFPs);
+		parseSentimentLexicon(lexiconFile);
+		train(trainingFile);
+		if(USE_MODEL_STORE) {
+			modelStore = buildGlobalStore();
+			hmm = new HMM(modelStore);
+		} else {
+			hmm = new HMM(TPmap, initialProbMap);
+			hmm.addPolarities(lexiconPolarities);
+			hmm.addFPs(posFPs, neuFPs, negFPs);
+		}
+		hmm.addDocClassifier(docClassifier);
+		if(USE_DOMAIN_MODELS) {
+			registry = new ModelRegistry(this, MODEL_MEMORY_BUDGET);	//Builds the category models up front
+			hmm.addRegistry(registry);
+		}
+		categoryTPs = null;
+		categoryInitialProbs = null;
+		categoryFPCounts = null;
+		if(USE_MODEL_STORE) {
+			posFPs = null;
+			neuFPs = null;
+			negFPs = null;
+			lexiconPolarities = null;
+			if(docClassifier != null) {
+				docClassifier.releaseWords();
+			}
+		}
+	}
+	
+	/*
+	 * Builds the global model from the tables just trained, then writes and maps its model file
+	 * The file is always rewritten, so the model is never one trained by other code
+	 * Without a model directory, or if the file can't be written, the model stays in direct memory
+	 */
+	private ModelStore buildGlobalStore() {
+		long stamp = getModelStamp(null);
+		ModelStore store = ModelStore.build(TPmap, initialProbMap, lexiconPolarities, posFPs, neuFPs, negFPs, docClassifier, stamp);
+		if(modelDirectory == null) return store;
+		
+		File file = ModelStore.modelFile(modelDirectory, "global", stamp);
+		try {
+			new File(modelDirectory).mkdirs();
+			store.write(file.getPath());
+			return ModelStore.map(file.getPath());
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+			return store;
+		}
 	}
 	
 	/*
@@ -61,14 +142,13 @@ public class SequenceTagger {
 	public void tag(String filename) {
 		File file = new File(filename);
 		
-		String data = "";
 		try {
-			data = new String(Files.readAllBytes(Paths.get(file.getAbsolutePath())));
-		} catch (IOException e) {
+			Scanner in = new Scanner(new BufferedReader(new FileReader(file)));		//Stream the file, dumps can be larger than the heap
+			hmm.runHMM(in);
+			in.close();
+		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		}
-		
-		hmm.runHMM(data);
 	}
 	
 	/*
@@ -132,9 +212,16 @@ public class SequenceTagger {
 		trainEPs(filename);
 	}
 	
+	/*
+	 * Trains the FPs, and the document classifier in the same pass
+	 */
 	public void trainEPs(String filename) {
 		File file = new File(filename);
 		BufferedReader reader;
+		Pattern header = Pattern.compile("[a-z]*_[a-z]*_[0-9]*");	//matches on review headers eg electronics_neg_7
+		HMM.State docState = null;
+		HashMap<String, double[]> docCategoryCounts = null;			//FP counts of the current review's category
+		ArrayList<String> docFeatures = new ArrayList<String>();		//lexicon words of the current review, for the document classifier
 		
 		for(String s : lexiconPolarities.keySet()) {
 			posFPs.put(s, 0.0);
@@ -148,15 +235,32 @@ public class SequenceTagger {
 			HMM.State currState;
 			
 			while((line = reader.readLine()) != null) {
+				if(header.matcher(line).matches()) {			//A new review starts, hand the previous one to the document classifier
+					learnDocument(docFeatures, docState);
+					docState = parseDocSentiment(line);
+					docCategoryCounts = categoryCounts(categoryFPCounts, ModelRegistry.categoryOf(line), new HashMap<String, double[]>());
+					continue;
+				}
 				if(line.startsWith("pos")) currState = HMM.State.POS;
 				else if (line.startsWith("neu")) currState = HMM.State.NEUT;
 				else if (line.startsWith("neg")) currState = HMM.State.NEG;
-				else continue;			//Ignore lines not starting with "pos", "neu" or "neg", these are the review headers and the empty lines which are irrelevant
+				else continue;			//Ignore lines not starting with "pos", "neu" or "neg", these are the empty lines which are irrelevant
 				String processed = line.replaceAll("([(),!.?;:])", " $1 ").toLowerCase();
 				String[] tokens = processed.split("\\s+");
 				
 				for(int a = 0; a < tokens.length; a++) {
 					if(lexiconPolarities.containsKey(tokens[a])) {				//If the word is contained in the sentiment lexicon, process it
+						if(docClassifier != null) {
+							docFeatures.add(tokens[a]);
+						}
+						if(docCategoryCounts != null) {
+							double[] counts = docCategoryCounts.get(tokens[a]);
+							if(counts == null) {
+								counts = new double[3];
+								docCategoryCounts.put(tokens[a], counts);
+							}
+							counts[currState == HMM.State.POS ? 0 : currState == HMM.State.NEUT ? 1 : 2]++;
+						}
 						switch (currState) {
 						case POS: 	posFPs.put(tokens[a], posFPs.get(tokens[a]) + 1.0);
 									break;
@@ -172,6 +276,11 @@ public class SequenceTagger {
 				}
 				//This finishes the processing of the line
 			}
+			learnDocument(docFeatures, docState);
+			if(docClassifier != null) {
+				docClassifier.train();
+			}
+			reader.close();
 			//Now all the lines of the document are processed, we need to smooth and convert the raw values to the relevant percentages
 			//posFPs = smooth(posFPs);
 			//negFPs = smooth(negFPs);
@@ -189,6 +298,28 @@ public class SequenceTagger {
 		}
 	}
 	
+	/*
+	 * Feeds one finished training review to the document classifier, if there is one
+	 */
+	private void learnDocument(ArrayList<String> features, HMM.State docState) {
+		if(docClassifier != null && docState != null) {
+			docClassifier.addReview(features, docState);
+		}
+		features.clear();
+	}
+	
+	/*
+	 * Reads the document sentiment from a review header eg electronics_neg_7
+	 */
+	private HMM.State parseDocSentiment(String header) {
+		String sentiment = header.replaceAll("[a-z]*_([a-z]*)_[0-9]*", "$1");
+		switch(sentiment) {
+		case "pos" : 	return HMM.State.POS;
+		case "neg" : 	return HMM.State.NEG;
+		default :		return HMM.State.NEUT;
+		}
+	}
+	
 	public HashMap<String, Double> smooth(HashMap<String, Double> data) {
 		HashMap<String, Double> smoothedData = new HashMap<String, Double>();
 		Iterator<Double> iterator = data.values().iterator();
@@ -275,7 +406,10 @@ public class SequenceTagger {
 			String nextWord = stringIterator.next();
 			double unsmoothedCount = data.get(nextWord);
 			
-			smoothedData.put(nextWord, c_stars[(int) unsmoothedCount]);	
+			if(unsmoothedCount < c_stars.length) {
+				smoothedData.put(nextWord, c_stars[(int) unsmoothedCount]);
+			}
+			else smoothedData.put(nextWord, (unsmoothedCount + LAPLACE_K) * (c_stars.length/3));	//counts past the vocabulary size only occur on large training sets
 		}
 		
 		//Sum the total number of "values" given the new smoothed counts
@@ -304,6 +438,9 @@ public class SequenceTagger {
 			String line;
 			HMM.State prevState = null;
 			boolean newReview = false;
+			String reviewCategory = null;
+			HashMap<HMM.State, HashMap<HMM.State, Float>> reviewTPs = null;		//counts of the current review's category
+			HashMap<HMM.State, Float> reviewInitialProbs = null;
 			
 			while((line = reader.readLine()) != null) {
 				HMM.State state = null;
@@ -316,16 +453,32 @@ public class SequenceTagger {
 				} else if(line.length() > 0) {
 					newReview = true;
 					prevState = null;
+					
+					reviewCategory = ModelRegistry.categoryOf(line);
+					reviewTPs = categoryCounts(categoryTPs, reviewCategory, new HashMap<HMM.State, HashMap<HMM.State, Float>>());
+					reviewInitialProbs = categoryCounts(categoryInitialProbs, reviewCategory, new HashMap<HMM.State, Float>());
+					if(reviewCategory != null) {
+						increment(categoryReviews, reviewCategory);
+					}
 				}
 				
 				if(state != null) {
 					numEntries++;
+					if(reviewCategory != null) {
+						increment(categoryEntries, reviewCategory);
+					}
 					if(newReview) {
 						newReview = false;
 						numReviews++;
-						updateInitialProbMap(state);
+						updateInitialProbMap(initialProbMap, state);
+						if(reviewInitialProbs != null) {
+							updateInitialProbMap(reviewInitialProbs, state);
+						}
 					} else {
-						updateTPMap(state, prevState);
+						updateTPMap(TPmap, state, prevState);
+						if(reviewTPs != null) {
+							updateTPMap(reviewTPs, state, prevState);
+						}
 					}
 					prevState = state;
 				}
@@ -372,7 +525,7 @@ public class SequenceTagger {
 	/*
 	 * Increments the count for initial state probabilities
 	 */
-	private void updateInitialProbMap(HMM.State state) {
+	private void updateInitialProbMap(HashMap<HMM.State, Float> initialProbMap, HMM.State state) {
 		if(!initialProbMap.containsKey(state)) {
 			initialProbMap.put(state, 1f);
 		} else {
@@ -383,7 +536,7 @@ public class SequenceTagger {
 	/*
 	 * Increments the count for each TP entry according to the transition
 	 */
-	private void updateTPMap(HMM.State state, HMM.State prevState) {
+	private void updateTPMap(HashMap<HMM.State, HashMap<HMM.State, Float>> TPmap, HMM.State state, HMM.State prevState) {
 		if(state == null || prevState == null) return;
 		
 		if(!TPmap.containsKey(prevState)) {
@@ -398,6 +551,87 @@ public class SequenceTagger {
 		}
 	}
 	
+	/*
+	 * Returns the counts of the category, adding empty if it has none yet
+	 */
+	private <T> T categoryCounts(HashMap<String, T> counts, String category, T empty) {
+		if(category == null) return null;
+		if(!counts.containsKey(category)) {
+			counts.put(category, empty);
+		}
+		return counts.get(category);
+	}
+	
+	private void increment(HashMap<String, Integer> counts, String key) {
+		Integer count = counts.get(key);
+		counts.put(key, count == null ? 1 : count + 1);
+	}
+	
+	/*
+	 * Builds the model store of one category from the counts of the training passes
+	 * Returns null if some state never occurs in the category, the Viterbi needs every TP
+	 */
+	public ModelStore buildCategoryStore(String category) {
+		HashMap<HMM.State, HashMap<HMM.State, Float>> TPs = categoryTPs.get(category);
+		HashMap<HMM.State, Float> initialProbs = categoryInitialProbs.get(category);
+		HashMap<String, double[]> counts = categoryFPCounts.get(category);
+		if(TPs == null || initialProbs == null || counts == null) return null;
+		for(HMM.State state : HMM.State.values()) {
+			if(!TPs.containsKey(state) || TPs.get(state).size() < HMM.State.values().length || !initialProbs.containsKey(state)) {
+				return null;
+			}
+		}
+		
+		// Normalize counts to probabilities, the same way trainTPs does
+		int reviews = categoryReviews.get(category);
+		int entries = categoryEntries.get(category);
+		HashMap<HMM.State, HashMap<HMM.State, Float>> normalizedTPs = new HashMap<HMM.State, HashMap<HMM.State, Float>>();
+		HashMap<HMM.State, Float> normalizedInitialProbs = new HashMap<HMM.State, Float>();
+		for(HMM.State state : HMM.State.values()) {
+			HashMap<HMM.State, Float> row = new HashMap<HMM.State, Float>();
+			for(HMM.State next : HMM.State.values()) {
+				row.put(next, TPs.get(state).get(next)/(entries-reviews));
+			}
+			normalizedTPs.put(state, row);
+			normalizedInitialProbs.put(state, initialProbs.get(state)/reviews);
+		}
+		
+		HashMap<String, Double> pos = new HashMap<String, Double>();
+		HashMap<String, Double> neu = new HashMap<String, Double>();
+		HashMap<String, Double> neg = new HashMap<String, Double>();
+		for(String s : lexiconPolarities.keySet()) {
+			double[] c = counts.get(s);
+			pos.put(s, c == null ? 0.0 : c[0]);
+			neu.put(s, c == null ? 0.0 : c[1]);
+			neg.put(s, c == null ? 0.0 : c[2]);
+		}
+		
+		return ModelStore.build(normalizedTPs, normalizedInitialProbs, lexiconPolarities,
+				laplaceSmoothing(pos), laplaceSmoothing(neu), laplaceSmoothing(neg), docClassifier,
+				getModelStamp(category));
+	}
+	
+	/*
+	 * Hash of the training settings, so model files trained with other settings are never mapped
+	 */
+	public long getTrainingParameters() {
+		long hash = TRAINING_VERSION;
+		hash = hash * 31 + LAPLACE_K;
+		hash = hash * 31 + GOOD_TURING_K;
+		hash = hash * 31 + Float.floatToIntBits(strongTypeWeight);
+		hash = hash * 31 + Float.floatToIntBits(weakTypeWeight);
+		hash = hash * 31 + (docClassifier == null ? 0 : docClassifier.getParameters());
+		return hash;
+	}
+	
+	/*
+	 * Stamp of the model of the category, null is the global model
+	 * The global stamp covers everything the category models are trained from as well
+	 */
+	public long getModelStamp(String category) {
+		return ModelStore.stamp(lexiconFile, trainingFile, getTrainingParameters(), category);
+	}
+	
 	public HashMap<HMM.State, HashMap<HMM.State, Float>> getTPs() {
 		return TPmap;
 	}
@@ -406,6 +640,9 @@ public class SequenceTagger {
 		return initialProbMap;
 	}
 	
+	/*
+	 * The lexicon and FP getters return null once the model is in the model store, see getModelStore()
+	 */
 	public HashMap<String, Float> getLexiconPolarities() {
 		return lexiconPolarities;
 	}
@@ -421,7 +658,60 @@ public class SequenceTagger {
 	public HashMap<String, Double> getNegFPs() {
 		return negFPs;
 	}
+	
+	/*
+	 * Returns the per-category models, null if USE_DOMAIN_MODELS is off
+	 */
+	public ModelRegistry getRegistry() {
+		return registry;
+	}
+	
+	/*
+	 * Returns the document classifier, null if USE_DOC_CLASSIFIER is off
+	 */
+	public DocumentClassifier getDocClassifier() {
+		return docClassifier;
+	}
+	
+	public HMM getHMM() {
+		return hmm;
+	}
+	
+	/*
+	 * Returns the off-heap copy of the trained tables, null if USE_MODEL_STORE is off
+	 */
+	public ModelStore getModelStore() {
+		return modelStore;
+	}
+	
+	public String getModelDirectory() {
+		return modelDirectory;
+	}
+	
+	public String getLexiconFile() {
+		return lexiconFile;
+	}
+	
+	public String getTrainingFile() {
+		return trainingFile;
+	}
+	
+	/*
+	 * Number of training reviews per category, counted over the whole training file
+	 */
+	public HashMap<String, Integer> getCategoryReviews() {
+		return categoryReviews;
+	}
 
+	/*
+	 * Lexicon polarity of the word, null if it is not in the lexicon
+	 */
+	private Float polarityOf(String word) {
+		if(lexiconPolarities != null) return lexiconPolarities.get(word);
+		int row = modelStore.find(word);
+		return row < 0 ? null : modelStore.getPolarity(row);
+	}
+	
 	/*
 	 * Perform baseline tagging predictions
 	 */
@@ -451,8 +741,9 @@ public class SequenceTagger {
 				float score = 0;
 				int numFeatures = 0;
 				for(String s: tokens) {
-					if(lexiconPolarities.containsKey(s)) {
-						score += lexiconPolarities.get(s);
+					Float polarity = polarityOf(s);
+					if(polarity != null) {
+						score += polarity;
 						numFeatures ++;
 						features.add(s);
 					}
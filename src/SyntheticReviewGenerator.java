@@ -0,0 +1,216 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/*
+ * Samples synthetic reviews from a trained HMM and writes them in the training data format
+ *
+ * Each review is a header eg music_neg_7 followed by "label\tsentence" lines and an empty line.
+ * The sentence sentiments follow the start probabilities and TPs, and each sentence draws its
+ * lexicon words from the FPs of its sentiment, padded with neutral filler words.
+ * The output only depends on the model and the seed, so runs are reproducible.
+ */
+public class SyntheticReviewGenerator {
+	private Random random;
+	private HMM.State[] states = HMM.State.values();
+
+	private double[] startCumulative;
+	private double[][] transitionCumulative;		//[previous state ordinal][next state ordinal]
+	private String[] words;
+	private double[][] emissionCumulative;		//[state ordinal][word index]
+	private String[] categories;
+
+	private long numReviews = 0;
+	private long numSentences = 0;
+
+	private final int MIN_SENTENCES = 3;
+	private final int MAX_SENTENCES = 15;
+	private final int MAX_FEATURES = 3;			//lexicon words per sentence
+	private final int MIN_FILLER = 4;
+	private final int MAX_FILLER = 16;
+	private final String[] FILLER = {
+		"the", "a", "this", "it", "i", "was", "is", "and", "but", "of", "to", "in", "for", "with",
+		"on", "my", "they", "that", "album", "book", "movie", "game", "player", "song", "story",
+		"price", "time", "one", "after", "just", "about", "really", "some", "first", "more"
+	};
+
+	public SyntheticReviewGenerator(SequenceTagger tagger, long seed) {
+		random = new Random(seed);
+
+		//The FPs are only kept in the model store, unless the tagger doesn't use one
+		ModelStore store = tagger.getModelStore();
+		if(store == null) {
+			store = ModelStore.build(tagger.getTPs(), tagger.getInitialProbs(), tagger.getLexiconPolarities(),
+					tagger.getPosFPs(), tagger.getNeuFPs(), tagger.getNegFPs(), null, 0);
+		}
+
+		startCumulative = new double[states.length];
+		transitionCumulative = new double[states.length][states.length];
+		HashMap<HMM.State, Float> startProbs = store.getStartProbs();
+		HashMap<HMM.State, HashMap<HMM.State, Float>> transitions = store.getTransitions();
+		for(int i = 0; i < states.length; i++) {
+			startCumulative[i] = valueOf(startProbs, states[i]);
+			HashMap<HMM.State, Float> row = transitions.get(states[i]);
+			for(int j = 0; j < states.length; j++) {
+				transitionCumulative[i][j] = row == null ? 1 : valueOf(row, states[j]);
+			}
+			toCumulative(transitionCumulative[i]);
+		}
+		toCumulative(startCumulative);
+
+		//Sort the words so the sampling order doesn't depend on HashMap iteration order
+		ArrayList<String> lexicon = new ArrayList<String>();
+		for(int row = 0; row < store.getVocabularySize(); row++) {
+			lexicon.add(store.getWord(row));
+		}
+		Collections.sort(lexicon);
+		words = lexicon.toArray(new String[lexicon.size()]);
+		emissionCumulative = new double[states.length][words.length];
+		for(int a = 0; a < words.length; a++) {
+			int row = store.find(words[a]);
+			emissionCumulative[HMM.State.POS.ordinal()][a] = store.getPos(row);
+			emissionCumulative[HMM.State.NEUT.ordinal()][a] = store.getNeu(row);
+			emissionCumulative[HMM.State.NEG.ordinal()][a] = store.getNeg(row);
+		}
+		for(int i = 0; i < states.length; i++) {
+			toCumulative(emissionCumulative[i]);
+		}
+
+		ArrayList<String> names = new ArrayList<String>(tagger.getCategoryReviews().keySet());
+		Collections.sort(names);
+		categories = names.isEmpty() ? new String[] {"general"} : names.toArray(new String[names.size()]);
+	}
+
+	/*
+	 * Writes reviews to the file until it holds at least targetBytes
+	 * Returns the number of bytes written
+	 */
+	public long write(String filename, long targetBytes) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(filename), 1 << 16);
+		StringBuilder review = new StringBuilder();
+		long written = 0;
+
+		try {
+			while(written < targetBytes) {
+				review.setLength(0);
+				appendReview(review);
+				writer.append(review);
+				written += review.length();		//Everything generated is ASCII, one byte per char
+			}
+		} finally {
+			writer.close();
+		}
+		return written;
+	}
+
+	/*
+	 * Samples one review, including its header and the empty line that ends it
+	 */
+	public void appendReview(StringBuilder review) {
+		int length = MIN_SENTENCES + random.nextInt(MAX_SENTENCES - MIN_SENTENCES + 1);
+		HMM.State[] sentiments = new HMM.State[length];
+		int[] counts = new int[states.length];
+
+		sentiments[0] = states[sample(startCumulative)];
+		counts[sentiments[0].ordinal()]++;
+		for(int i = 1; i < length; i++) {
+			sentiments[i] = states[sample(transitionCumulative[sentiments[i-1].ordinal()])];
+			counts[sentiments[i].ordinal()]++;
+		}
+
+		//The document label is the majority sentence sentiment, ties are neutral
+		String docLabel = "neu";
+		if(counts[HMM.State.POS.ordinal()] > counts[HMM.State.NEG.ordinal()] && counts[HMM.State.POS.ordinal()] > counts[HMM.State.NEUT.ordinal()]) {
+			docLabel = "pos";
+		} else if(counts[HMM.State.NEG.ordinal()] > counts[HMM.State.POS.ordinal()] && counts[HMM.State.NEG.ordinal()] > counts[HMM.State.NEUT.ordinal()]) {
+			docLabel = "neg";
+		}
+
+		review.append(categories[random.nextInt(categories.length)]).append('_').append(docLabel).append('_').append(numReviews).append('\n');
+		for(HMM.State sentiment : sentiments) {
+			appendSentence(review, sentiment);
+		}
+		review.append('\n');
+
+		numReviews++;
+		numSentences += length;
+	}
+
+	private void appendSentence(StringBuilder review, HMM.State sentiment) {
+		switch(sentiment) {
+		case POS :	review.append("pos\t");
+					break;
+		case NEG :	review.append("neg\t");
+					break;
+		default :	review.append("neu\t");
+					break;
+		}
+
+		int numFeatures = random.nextInt(MAX_FEATURES + 1);
+		int numFiller = MIN_FILLER + random.nextInt(MAX_FILLER - MIN_FILLER + 1);
+		int total = numFeatures + numFiller;
+		double[] emissions = emissionCumulative[sentiment.ordinal()];
+
+		for(int a = 0; a < total; a++) {
+			String word;
+			if(random.nextInt(total - a) < numFeatures) {		//Spread the lexicon words uniformly over the sentence
+				word = words[sample(emissions)];
+				numFeatures--;
+			} else {
+				word = FILLER[random.nextInt(FILLER.length)];
+			}
+
+			if(a == 0) {
+				review.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+			} else {
+				review.append(' ').append(word);
+			}
+		}
+		review.append(".\n");
+	}
+
+	/*
+	 * Draws an index from a cumulative distribution whose last entry is 1
+	 */
+	private int sample(double[] cumulative) {
+		double r = random.nextDouble();
+		int low = 0;
+		int high = cumulative.length - 1;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(cumulative[mid] <= r) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private void toCumulative(double[] weights) {
+		double total = 0;
+		for(double w : weights) {
+			total += w;
+		}
+		double sum = 0;
+		for(int i = 0; i < weights.length; i++) {
+			sum += total > 0 ? weights[i] / total : 1.0 / weights.length;
+			weights[i] = sum;
+		}
+		weights[weights.length - 1] = 1.0;
+	}
+
+	private double valueOf(HashMap<HMM.State, Float> map, HMM.State state) {
+		Float value = map.get(state);
+		return value == null ? 0 : value;
+	}
+
+	public long getNumReviews() {
+		return numReviews;
+	}
+
+	public long getNumSentences() {
+		return numSentences;
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/*
+ * End to end throughput harness
+ *
+ * Generates a synthetic data set from the model trained on the bundled training data,
+ * then trains a tagger on it and tags it, reporting throughput, GC and RSS for every phase.
+ * The train phase also builds and maps the per-category models, so the tag phase only tags.
+ * All model files go to <output file>.models, away from the models of normal runs.
+ *
+ * Usage: java ThroughputHarness <size eg 64MB, 10GB> [seed] [output file]
+ */
+public class ThroughputHarness {
+	private long phaseStart;
+	private long gcCountStart;
+	private long gcTimeStart;
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: java ThroughputHarness <size eg 64MB, 10GB> [seed] [output file]");
+			System.exit(1);
+		}
+		long size = parseSize(args[0]);
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 4740;
+		String filename = args.length > 2 ? args[2] : "synthetic_reviews.txt";
+
+		String modelDirectory = filename + ".models";
+		ThroughputHarness harness = new ThroughputHarness();
+
+		//Generate
+		harness.startPhase();
+		SyntheticReviewGenerator generator = new SyntheticReviewGenerator(new SequenceTagger("src/sentimentlexicon.tff", "src/training_data.txt", modelDirectory), seed);
+		long bytes = generator.write(filename, size);
+		harness.endPhase("generate", bytes, generator.getNumSentences());
+
+		//Train
+		harness.startPhase();
+		SequenceTagger tagger = new SequenceTagger("src/sentimentlexicon.tff", filename, modelDirectory);
+		if(tagger.getRegistry() != null) {
+			tagger.getRegistry().warm();
+		}
+		harness.endPhase("train", bytes, generator.getNumSentences());
+
+		//Tag, the tags go to a file next to the data so stdout stays readable
+		PrintStream tags = new PrintStream(new BufferedOutputStream(new FileOutputStream(filename + ".tags"), 1 << 16));
+		tagger.getHMM().setOutput(tags);
+		harness.startPhase();
+		tagger.tag(filename);
+		tags.flush();
+		harness.endPhase("tag", bytes, tagger.getHMM().getNumSentences());
+		tags.close();
+	}
+
+	public void startPhase() {
+		gcCountStart = gcCount();
+		gcTimeStart = gcTime();
+		phaseStart = System.nanoTime();
+	}
+
+	/*
+	 * Prints one report line for the phase that was started last
+	 */
+	public void endPhase(String phase, long bytes, long sentences) {
+		double seconds = (System.nanoTime() - phaseStart) / 1e9;
+		double megabytes = bytes / (1024.0 * 1024.0);
+		System.out.println(String.format("%-8s %10.2f s %10.2f MB/s %12.0f sentences/s  gc %6d collections %8d ms  rss %8d kB  peak rss %8d kB",
+				phase, seconds, megabytes / seconds, sentences / seconds,
+				gcCount() - gcCountStart, gcTime() - gcTimeStart,
+				procStatus("VmRSS:"), procStatus("VmHWM:")));
+	}
+
+	private long gcCount() {
+		long count = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private long gcTime() {
+		long time = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	/*
+	 * Reads a kB value such as VmRSS from /proc/self/status, -1 if it is not available (non Linux)
+	 */
+	private long procStatus(String key) {
+		File status = new File("/proc/self/status");
+		if(!status.exists()) return -1;
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith(key)) {
+					return Long.parseLong(line.substring(key.length()).replace("kB", "").trim());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return -1;
+	}
+
+	/*
+	 * Parses sizes such as 512KB, 64MB, 10GB or a plain number of bytes
+	 */
+	public static long parseSize(String size) {
+		String s = size.trim().toUpperCase();
+		long unit = 1;
+		if(s.endsWith("KB")) unit = 1L << 10;
+		else if(s.endsWith("MB")) unit = 1L << 20;
+		else if(s.endsWith("GB")) unit = 1L << 30;
+		if(unit != 1) s = s.substring(0, s.length() - 2);
+		return (long) (Double.parseDouble(s) * unit);
+	}
+}